@@ -0,0 +1,290 @@
+package com.clearspring.analytics.stream.cardinality;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * A file of {@link StreamingHyperLogLogPlus} sketches of the same precision, whose registers are memory-mapped.
+ * Sketches returned by {@link #get(int)} read and write the file's pages directly, so updates are durable through the
+ * OS page cache, and opening an existing file doesn't read or merge anything - pages are loaded as they are touched.
+ * <p>
+ * The file starts with a fixed-size header holding a magic number, the format version, the precision, the number of
+ * sketches and the number of words per sketch, followed by a CRC32 of those fields.
+ * The register area is filled with explicitly written zeros, so that its disk blocks are reserved up front: a full disk
+ * fails {@link #create(File, int, int) create} with an IOException, instead of failing a mapped write later (which
+ * the JVM reports as an InternalError). Filesystems that compress or deduplicate zeros may still not reserve them.
+ * The header is written and forced to disk only after that, so a file whose creation was interrupted fails to
+ * {@link #open(File) open} instead of being silently misread. The header never changes after creation.
+ * </p>
+ * <p>
+ * The offer and addAll methods only ever increase registers, and each word is written atomically, so if only those
+ * were used, after a crash the registers hold a subset of the offered updates, which is still a valid sketch.
+ * This does not hold for {@link StreamingHyperLogLogPlus#reset()} or {@link StreamingRegisterSet#set(int, int)} on a
+ * mapped sketch: a crash in the middle of them can leave a partially cleared sketch.
+ * Call {@link #force()} to make sure updates have reached the disk.
+ * </p>
+ * <p>
+ * Like {@link StreamingHyperLogLogPlus}, this class is not thread-safe.
+ * </p>
+ */
+public class MappedStreamingHyperLogLogPlusFile implements Closeable {
+
+    public static final int MAGIC = 0x53484C4C; // "SHLL"
+    public static final int FORMAT_VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+
+    /**
+     * Upper bound on the size of a single mapping, which can't exceed 2GB. Each mapping holds whole sketches.
+     */
+    private static final int MAX_CHUNK_BYTES = 1 << 30;
+
+    /**
+     * Size of the buffer of zeros used to reserve the register area on {@link #create(File, int, int)}.
+     */
+    private static final int ZERO_FILL_BYTES = 1 << 16;
+
+    private final RandomAccessFile file;
+    private final int p;
+    private final int m;
+    private final int sketchCount;
+    private final int bytesPerSketch;
+    private final int sketchesPerChunk;
+    private final MappedByteBuffer[] chunks;
+    private boolean closed;
+
+    private MappedStreamingHyperLogLogPlusFile(RandomAccessFile file, int p, int sketchCount) throws IOException
+    {
+        this.file = file;
+        this.p = p;
+        this.m = (int) Math.pow(2, p);
+        this.sketchCount = sketchCount;
+        this.bytesPerSketch = StreamingRegisterSet.getSizeForCount(m) * 4;
+        this.sketchesPerChunk = Math.max(1, MAX_CHUNK_BYTES / bytesPerSketch);
+
+        int chunkCount = (int) ((sketchCount + (long) sketchesPerChunk - 1) / sketchesPerChunk);
+        this.chunks = new MappedByteBuffer[chunkCount];
+        FileChannel channel = file.getChannel();
+        for (int c = 0; c < chunkCount; c++)
+        {
+            int sketchesInChunk = Math.min(sketchesPerChunk, sketchCount - c * sketchesPerChunk);
+            long position = HEADER_SIZE + (long) c * sketchesPerChunk * bytesPerSketch;
+            chunks[c] = channel.map(FileChannel.MapMode.READ_WRITE, position, (long) sketchesInChunk * bytesPerSketch);
+        }
+    }
+
+    /**
+     * Creates a new file holding the given number of empty sketches.
+     * To replace an existing file, delete it first - this never overwrites one, since that would lose its sketches.
+     *
+     * @param p - the precision of every sketch in the file.
+     * @throws IOException if the file already exists, or can't be created
+     */
+    public static MappedStreamingHyperLogLogPlusFile create(File path, int p, int sketchCount) throws IOException
+    {
+        if (p < 4)
+        {
+            throw new IllegalArgumentException("p must be more than 4 (inclusive)");
+        }
+        if (sketchCount < 0)
+        {
+            throw new IllegalArgumentException("sketchCount must not be negative");
+        }
+
+        int wordsPerSketch = StreamingRegisterSet.getSizeForCount((int) Math.pow(2, p));
+        if (!path.createNewFile())
+        {
+            throw new IOException("File already exists: " + path);
+        }
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try
+        {
+            // Allocate the (zeroed) register area first, and only then write the header, so a partially created
+            // file is never mistaken for a valid one. setLength would only leave a sparse hole, whose blocks are
+            // allocated when pages are first written back, so write the zeros out to reserve them now.
+            FileChannel channel = file.getChannel();
+            long end = HEADER_SIZE + (long) sketchCount * wordsPerSketch * 4;
+            ByteBuffer zeros = ByteBuffer.allocate(ZERO_FILL_BYTES);
+            for (long position = HEADER_SIZE; position < end; )
+            {
+                zeros.clear();
+                zeros.limit((int) Math.min(ZERO_FILL_BYTES, end - position));
+                while (zeros.hasRemaining())
+                {
+                    position += channel.write(zeros, position);
+                }
+            }
+            channel.force(true);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putInt(FORMAT_VERSION);
+            header.putInt(p);
+            header.putInt(sketchCount);
+            header.putInt(wordsPerSketch);
+            header.putInt(0); // Reserved
+            header.putLong(headerChecksum(header));
+            header.flip();
+            while (header.hasRemaining())
+            {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+
+            return new MappedStreamingHyperLogLogPlusFile(file, p, sketchCount);
+        }
+        catch (IOException e)
+        {
+            // The file was created here, so it's safe to remove the partial one
+            file.close();
+            path.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens an existing file created by {@link #create(File, int, int)}. Only the header is read.
+     *
+     * @throws IOException if the header is missing, corrupt, or of an unsupported format version.
+     */
+    public static MappedStreamingHyperLogLogPlusFile open(File path) throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try
+        {
+            FileChannel channel = file.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining())
+            {
+                if (channel.read(header, header.position()) < 0)
+                {
+                    throw new IOException("File is too short to hold a header: " + path);
+                }
+            }
+            header.flip();
+
+            int magic = header.getInt();
+            int version = header.getInt();
+            int p = header.getInt();
+            int sketchCount = header.getInt();
+            int wordsPerSketch = header.getInt();
+            header.getInt(); // Reserved
+            long checksum = header.getLong();
+
+            if (magic != MAGIC)
+            {
+                throw new IOException("Not a sketch file: " + path);
+            }
+            // Other versions may lay out (and checksum) the rest of the header differently
+            if (version != FORMAT_VERSION)
+            {
+                throw new IOException(String.format("Unsupported format version %d, expected %d", version, FORMAT_VERSION));
+            }
+            if (checksum != headerChecksum(header))
+            {
+                throw new IOException("Header checksum mismatch, the file is corrupt or was not fully created: " + path);
+            }
+            if (p < 4 || sketchCount < 0 || wordsPerSketch != StreamingRegisterSet.getSizeForCount((int) Math.pow(2, p)))
+            {
+                throw new IOException(String.format("Invalid header: p=%d, sketchCount=%d, wordsPerSketch=%d", p, sketchCount, wordsPerSketch));
+            }
+            if (file.length() < HEADER_SIZE + (long) sketchCount * wordsPerSketch * 4)
+            {
+                throw new IOException("File is shorter than its header declares: " + path);
+            }
+
+            return new MappedStreamingHyperLogLogPlusFile(file, p, sketchCount);
+        }
+        catch (IOException e)
+        {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The CRC32 of the header fields preceding the checksum itself.
+     */
+    private static long headerChecksum(ByteBuffer header)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), 0, HEADER_SIZE - 8);
+        return crc.getValue();
+    }
+
+    public int getPrecision()
+    {
+        return p;
+    }
+
+    /**
+     * @return The number of sketches in the file.
+     */
+    public int size()
+    {
+        return sketchCount;
+    }
+
+    /**
+     * @return A sketch whose registers are the file's pages for the given index. It throws {@link IllegalStateException}
+     *         once the file is {@link #close() closed}, and can't be released to a {@link StreamingHyperLogLogPlusPool}.
+     * @throws IllegalStateException if the file is closed
+     */
+    public StreamingHyperLogLogPlus get(int sketchIdx)
+    {
+        checkOpen();
+        if (sketchIdx < 0 || sketchIdx >= sketchCount)
+        {
+            throw new IndexOutOfBoundsException("Sketch index " + sketchIdx + " out of " + sketchCount);
+        }
+
+        ByteBuffer slice = chunks[sketchIdx / sketchesPerChunk].duplicate();
+        int position = (sketchIdx % sketchesPerChunk) * bytesPerSketch;
+        slice.position(position);
+        slice.limit(position + bytesPerSketch);
+        return new StreamingHyperLogLogPlus(p, new MappedStreamingRegisterSet(m, slice.slice().asIntBuffer(), this));
+    }
+
+    /**
+     * Blocks until all register updates made so far have been written to the disk.
+     *
+     * @throws IllegalStateException if the file is closed
+     */
+    public void force()
+    {
+        checkOpen();
+        for (MappedByteBuffer chunk : chunks)
+        {
+            chunk.force();
+        }
+    }
+
+    /**
+     * {@link #force() Forces} pending updates and closes the file. Sketches obtained from {@link #get(int)} can't be used
+     * afterwards. The mapping itself is only released by the GC, so they fail explicitly instead of writing into it.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (closed)
+        {
+            return;
+        }
+        force();
+        closed = true;
+        file.close();
+    }
+
+    void checkOpen()
+    {
+        if (closed)
+        {
+            throw new IllegalStateException("The sketch file is closed");
+        }
+    }
+}
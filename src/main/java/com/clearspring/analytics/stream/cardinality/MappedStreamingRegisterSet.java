@@ -0,0 +1,56 @@
+package com.clearspring.analytics.stream.cardinality;
+
+import java.nio.IntBuffer;
+
+/**
+ * A {@link StreamingRegisterSet} whose words live in an {@link IntBuffer} instead of an int array, typically a slice of
+ * a memory-mapped file (see {@link MappedStreamingHyperLogLogPlusFile}).
+ * All the register logic is inherited, only the word accesses are overridden.
+ */
+public class MappedStreamingRegisterSet extends StreamingRegisterSet {
+
+    private final IntBuffer words;
+    private final MappedStreamingHyperLogLogPlusFile owner;
+
+    /**
+     * @param words - holds exactly {@link StreamingRegisterSet#getSizeForCount(int)} words, starting at index 0.
+     */
+    public MappedStreamingRegisterSet(int count, IntBuffer words)
+    {
+        this(count, words, null);
+    }
+
+    /**
+     * @param owner - the file the words are mapped from. Once it is closed, every access throws {@link IllegalStateException}.
+     */
+    MappedStreamingRegisterSet(int count, IntBuffer words, MappedStreamingHyperLogLogPlusFile owner)
+    {
+        super(count, getSizeForCount(count));
+        if (words.capacity() != size)
+        {
+            throw new IllegalArgumentException("Expected a buffer of " + size + " words, got " + words.capacity());
+        }
+        this.words = words;
+        this.owner = owner;
+    }
+
+    @Override
+    protected void setDirectly(int position, int value) {
+        checkOpen();
+        words.put(position, value);
+    }
+
+    @Override
+    protected int getDirectly(int position) {
+        checkOpen();
+        return words.get(position);
+    }
+
+    private void checkOpen()
+    {
+        if (owner != null)
+        {
+            owner.checkOpen();
+        }
+    }
+}
@@ -4,6 +4,7 @@ import com.clearspring.analytics.hash.MurmurHash;
 import com.clearspring.analytics.util.Varint;
 
 import java.io.*;
+import java.nio.LongBuffer;
 import java.util.*;
 
 /**
@@ -197,6 +198,36 @@ public class StreamingHyperLogLogPlus implements ICardinality {
         return registerSet.updateIfGreater((int)idx, runLength);
     }
 
+    /**
+     * @see #offerAllHashed(LongBuffer)
+     */
+    public boolean offerAllHashed(long[] hashedLongs)
+    {
+        return offerAllHashed(LongBuffer.wrap(hashedLongs));
+    }
+
+    /**
+     * Equivalent to calling {@link #offerHashed(long)} for every remaining hash in the buffer.
+     * The buffer's position is advanced to its limit.
+     * <p>
+     * This is a plain loop over the hashes, in order. Partitioning them by register index first was measured not to
+     * help on the hardware it was tested on.
+     * </p>
+     *
+     * @return true if any register was updated
+     */
+    public boolean offerAllHashed(LongBuffer hashedLongs)
+    {
+        boolean updated = false;
+        final int to = hashedLongs.limit();
+        for (int i = hashedLongs.position(); i < to; i++)
+        {
+            updated |= offerHashed(hashedLongs.get(i));
+        }
+        hashedLongs.position(to);
+        return updated;
+    }
+
     @Override
     public boolean offerHashed(int hashedInt)
     {
@@ -216,23 +247,81 @@ public class StreamingHyperLogLogPlus implements ICardinality {
     @Override
     public long cardinality()
     {
-        double registerSum = 0;
+        EstimateScratch scratch = new EstimateScratch();
+        int count = registerSet.count;
+        for (int bucket = 0, j = 0; bucket < registerSet.size && j < count; bucket++, j += StreamingRegisterSet.LOG2_BITS_PER_WORD)
+        {
+            countRegisters(registerSet.getDirectly(bucket), Math.min(StreamingRegisterSet.LOG2_BITS_PER_WORD, count - j), scratch.histogram);
+        }
+        return estimateCardinality(scratch);
+    }
+
+    /**
+     * Reusable buffers for {@link #estimateCardinality(EstimateScratch)}, so that bulk estimation doesn't allocate.
+     */
+    static final class EstimateScratch {
+
+        /**
+         * Number of registers holding each value, filled by {@link #countRegisters(int, int, int[])}.
+         * There's a separate histogram for each register position in a word, so that consecutive increments usually
+         * hit different counters (most registers of a small sketch are 0) and don't wait for each other.
+         */
+        final int[] histogram = new int[StreamingRegisterSet.LOG2_BITS_PER_WORD << StreamingRegisterSet.REGISTER_SIZE];
+        final double[] nearestDistances = new double[NEAREST_NEIGHBORS];
+        final int[] nearestIndexes = new int[NEAREST_NEIGHBORS];
+    }
+
+    private static final int NEAREST_NEIGHBORS = 6;
+
+    /**
+     * Adds the first registers of a word to the histogram of register values.
+     */
+    static void countRegisters(int word, int registers, int[] histogram)
+    {
+        if (registers == StreamingRegisterSet.LOG2_BITS_PER_WORD)
+        {
+            // Unrolled, since all words but the last are full
+            histogram[word & 0x1f]++;
+            histogram[32 | ((word >>> 5) & 0x1f)]++;
+            histogram[64 | ((word >>> 10) & 0x1f)]++;
+            histogram[96 | ((word >>> 15) & 0x1f)]++;
+            histogram[128 | ((word >>> 20) & 0x1f)]++;
+            histogram[160 | ((word >>> 25) & 0x1f)]++;
+            return;
+        }
+        for (int k = 0; k < registers; k++)
+        {
+            histogram[(k << StreamingRegisterSet.REGISTER_SIZE) | ((word >>> (StreamingRegisterSet.REGISTER_SIZE * k)) & 0x1f)]++;
+        }
+    }
+
+    /**
+     * The rest of {@link HyperLogLogPlus#cardinality()}, given the histogram of this instance's register values.
+     * Clears the histogram, so the scratch can be reused.
+     */
+    long estimateCardinality(EstimateScratch scratch)
+    {
         int count = registerSet.count;
+        int[] histogram = scratch.histogram;
+        // Every term is a register count times a power of two, so up to p = 21 all the partial sums are exact,
+        // and summing by value gives the same result as summing register by register.
+        double registerSum = 0;
         double zeros = 0;
-        for (int j = 0; j < registerSet.count; j++)
+        for (int i = 0; i < histogram.length; i++)
         {
-            int val = registerSet.get(j);
-            registerSum += 1.0 / (1<<val);
+            int val = i & 0x1f;
+            registerSum += histogram[i] * (1.0 / (1<<val));
             if (val == 0) {
-                zeros++;
+                zeros += histogram[i];
             }
         }
+        Arrays.fill(histogram, 0);
 
         double estimate = alphaMM * (1 / registerSum);
         double estimatePrime = estimate;
         if (estimate <= (5 * m))
         {
-            estimatePrime = estimate - getEstimateBias(estimate, p);
+            estimatePrime = estimate - getEstimateBias(estimate, p, scratch);
         }
         double H;
         if (zeros > 0)
@@ -254,7 +343,7 @@ public class StreamingHyperLogLogPlus implements ICardinality {
         }
     }
 
-    private double getEstimateBias(double estimate, int p)
+    private double getEstimateBias(double estimate, int p, EstimateScratch scratch)
     {
         // get nearest neighbors for this estimate and precision
         // above p = 18 there is no bias correction
@@ -263,8 +352,7 @@ public class StreamingHyperLogLogPlus implements ICardinality {
             return 0;
         }
         double[] estimateVector = HyperLogLogPlus.rawEstimateData[p - 4];
-        SortedMap<Double, Integer> estimateDistances = calcDistances(estimate, estimateVector);
-        int[] nearestNeighbors = getNearestNeighbors(estimateDistances);
+        int[] nearestNeighbors = getNearestNeighbors(estimate, estimateVector, scratch.nearestDistances, scratch.nearestIndexes);
         return getBias(nearestNeighbors);
     }
 
@@ -280,30 +368,42 @@ public class StreamingHyperLogLogPlus implements ICardinality {
         return biasTotal / (nearestNeighbors.length);
     }
 
-    private int[] getNearestNeighbors(SortedMap<Double, Integer> distanceMap)
+    /**
+     * Replaces the TreeMap of squared distances in {@link HyperLogLogPlus}, without allocating: keeps the indexes of the
+     * 6 closest estimates, ordered by distance. The vectors for p = 5 and 6 aren't sorted, so this is a linear scan.
+     * Like the TreeMap, an estimate at the same distance as a previous one replaces it, and missing neighbors are 0.
+     */
+    private static int[] getNearestNeighbors(double estimate, double[] estimateVector, double[] nearestDistances, int[] nearestIndexes)
     {
-        int[] nearest = new int[6];
-        int i = 0;
-        for (Integer index : distanceMap.values())
+        int found = 0;
+        for (int index = 0; index < estimateVector.length; index++)
         {
-            nearest[i++] = index;
-            if (i >= 6)
+            double distance = Math.pow(estimate - estimateVector[index], 2);
+            int pos = 0;
+            while (pos < found && nearestDistances[pos] < distance)
             {
-                break;
+                pos++;
             }
+            if (pos < found && nearestDistances[pos] == distance)
+            {
+                nearestIndexes[pos] = index;
+                continue;
+            }
+            if (pos == NEAREST_NEIGHBORS)
+            {
+                continue;
+            }
+            for (int i = Math.min(found, NEAREST_NEIGHBORS - 1); i > pos; i--)
+            {
+                nearestDistances[i] = nearestDistances[i - 1];
+                nearestIndexes[i] = nearestIndexes[i - 1];
+            }
+            nearestDistances[pos] = distance;
+            nearestIndexes[pos] = index;
+            found = Math.min(found + 1, NEAREST_NEIGHBORS);
         }
-        return nearest;
-    }
-
-    private SortedMap<Double, Integer> calcDistances(double estimate, double[] estimateVector)
-    {
-        SortedMap<Double, Integer> distances = new TreeMap<Double, Integer>();
-        int index = 0;
-        for (double anEstimateVector : estimateVector)
-        {
-            distances.put(Math.pow(estimate - anEstimateVector, 2), index++);
-        }
-        return distances;
+        Arrays.fill(nearestIndexes, found, NEAREST_NEIGHBORS, 0);
+        return nearestIndexes;
     }
 
     @Override
@@ -377,10 +477,42 @@ public class StreamingHyperLogLogPlus implements ICardinality {
     {
         StreamingHyperLogLogPlus merged = new StreamingHyperLogLogPlus(p);
         merged.addAll(this);
+        mergeInto(merged, estimators);
+        return merged;
+    }
+
+    /**
+     * Like {@link #mergeInto(StreamingHyperLogLogPlus, ICardinality...)}, but for a single source, which avoids
+     * allocating the varargs array. Together with {@link #reset()} or a {@link StreamingHyperLogLogPlusPool}, this allows
+     * aggregating repeatedly without allocating anything.
+     *
+     * @return The target, for convenience.
+     * @throws CardinalityMergeException if the source is not compatible
+     */
+    public static StreamingHyperLogLogPlus mergeInto(StreamingHyperLogLogPlus target, StreamingHyperLogLogPlus source)
+            throws CardinalityMergeException
+    {
+        target.addAll(source);
+        return target;
+    }
 
+    /**
+     * Like {@link #merge(ICardinality...)}, but merges the estimators into an existing target instead of allocating a new one.
+     * Together with {@link #reset()}, this allows aggregating repeatedly without creating new register sets.
+     * The varargs array is still allocated by the caller; merge sources one at a time with
+     * {@link #mergeInto(StreamingHyperLogLogPlus, StreamingHyperLogLogPlus)} to avoid it.
+     *
+     * @param target The instance to merge into, modified in place.
+     * @param estimators Compatible StreamingHyperLogLogPlus instances (same p). May be null.
+     * @return The target, for convenience.
+     * @throws CardinalityMergeException if any of the estimators is not compatible
+     */
+    public static StreamingHyperLogLogPlus mergeInto(StreamingHyperLogLogPlus target, ICardinality... estimators)
+            throws CardinalityMergeException
+    {
         if (estimators == null)
         {
-            return merged;
+            return target;
         }
 
         for (ICardinality estimator : estimators)
@@ -390,10 +522,23 @@ public class StreamingHyperLogLogPlus implements ICardinality {
                 throw new HyperLogLogPlus.HyperLogLogPlusMergeException("Cannot merge estimators of different class");
             }
             StreamingHyperLogLogPlus hll = (StreamingHyperLogLogPlus) estimator;
-            merged.addAll(hll);
+            target.addAll(hll);
         }
 
-        return merged;
+        return target;
+    }
+
+    /**
+     * Clears all registers in place, returning this instance to its empty state without reallocating them.
+     */
+    public void reset()
+    {
+        registerSet.clear();
+    }
+
+    public int getPrecision()
+    {
+        return p;
     }
 
     protected StreamingRegisterSet getRegisterSet() {
@@ -0,0 +1,204 @@
+package com.clearspring.analytics.stream.cardinality;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A fixed number of {@link StreamingHyperLogLogPlus} sketches of the same precision, whose registers are all stored
+ * in one contiguous array. Useful when many sketches are maintained side by side (e.g. one per key), and their
+ * cardinalities are requested together: {@link #cardinalities(long[])} scans the whole block sequentially, and can
+ * be split across a {@link ForkJoinPool}.
+ * <p>
+ * Like {@link StreamingHyperLogLogPlus}, this class is not thread-safe, apart from the parallel cardinality pass
+ * which only reads.
+ * </p>
+ */
+public class StreamingHyperLogLogPlusArray {
+
+    /**
+     * Below this many sketches, a parallel cardinality task computes its range directly instead of splitting it further.
+     */
+    private static final int PARALLEL_THRESHOLD = 64;
+
+    private final int p;
+    private final int wordsPerSketch;
+    private final int[] words;
+    private final StreamingHyperLogLogPlus[] sketches;
+
+    /**
+     * @param p - the precision of every sketch in the array.
+     * @param sketchCount - the number of sketches. Will take O(sketchCount * 2^p) memory!
+     */
+    public StreamingHyperLogLogPlusArray(int p, int sketchCount)
+    {
+        if (sketchCount < 0)
+        {
+            throw new IllegalArgumentException("sketchCount must not be negative");
+        }
+        if (p < 4)
+        {
+            throw new IllegalArgumentException("p must be more than 4 (inclusive)");
+        }
+
+        int m = (int) Math.pow(2, p);
+        this.p = p;
+        this.wordsPerSketch = StreamingRegisterSet.getSizeForCount(m);
+        if ((long) wordsPerSketch * sketchCount > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException(String.format("%d sketches of precision %d do not fit in one array", sketchCount, p));
+        }
+
+        this.words = new int[wordsPerSketch * sketchCount];
+        this.sketches = new StreamingHyperLogLogPlus[sketchCount];
+        for (int i = 0; i < sketchCount; i++)
+        {
+            sketches[i] = new StreamingHyperLogLogPlus(p, new StreamingRegisterSet(m, words, i * wordsPerSketch));
+        }
+    }
+
+    public int getPrecision()
+    {
+        return p;
+    }
+
+    /**
+     * @return The number of sketches in the array.
+     */
+    public int size()
+    {
+        return sketches.length;
+    }
+
+    /**
+     * @return A view of the sketch at the given index. Updates to it are written directly into this array.
+     *         It can't be released to a {@link StreamingHyperLogLogPlusPool}.
+     */
+    public StreamingHyperLogLogPlus get(int sketchIdx)
+    {
+        return sketches[sketchIdx];
+    }
+
+    public boolean offer(int sketchIdx, Object o)
+    {
+        return sketches[sketchIdx].offer(o);
+    }
+
+    public boolean offerHashed(int sketchIdx, long hashedLong)
+    {
+        return sketches[sketchIdx].offerHashed(hashedLong);
+    }
+
+    /**
+     * Merges other into the sketch at the given index.
+     *
+     * @see StreamingHyperLogLogPlus#addAll(StreamingHyperLogLogPlus)
+     */
+    public void addAll(int sketchIdx, StreamingHyperLogLogPlus other) throws CardinalityMergeException
+    {
+        sketches[sketchIdx].addAll(other);
+    }
+
+    /**
+     * Merges a serialized {@link HyperLogLogPlus} into the sketch at the given index.
+     *
+     * @see StreamingHyperLogLogPlus#addAll(InputStream)
+     */
+    public void addAll(int sketchIdx, InputStream inputStream) throws CardinalityMergeException, IOException
+    {
+        sketches[sketchIdx].addAll(inputStream);
+    }
+
+    /**
+     * @see StreamingHyperLogLogPlus#addAll(InputStream, boolean)
+     */
+    public void addAll(int sketchIdx, InputStream inputStream, boolean unsignedOnly) throws CardinalityMergeException, IOException
+    {
+        sketches[sketchIdx].addAll(inputStream, unsignedOnly);
+    }
+
+    /**
+     * Clears every sketch in the array.
+     */
+    public void reset()
+    {
+        Arrays.fill(words, 0);
+    }
+
+    /**
+     * Computes the cardinality of every sketch in one sequential pass over the registers.
+     *
+     * @param results Receives the cardinality of sketch i at index i. Must be at least {@link #size()} long.
+     */
+    public void cardinalities(long[] results)
+    {
+        checkResultsLength(results);
+        cardinalities(results, 0, sketches.length);
+    }
+
+    /**
+     * Like {@link #cardinalities(long[])}, but splits the sketches into ranges computed in parallel on the given pool.
+     */
+    public void cardinalities(long[] results, ForkJoinPool pool)
+    {
+        checkResultsLength(results);
+        pool.invoke(new CardinalitiesTask(results, 0, sketches.length));
+    }
+
+    private void checkResultsLength(long[] results)
+    {
+        if (results.length < sketches.length)
+        {
+            throw new IllegalArgumentException(String.format("results has length %d, but there are %d sketches", results.length, sketches.length));
+        }
+    }
+
+    /**
+     * Scans the words of each sketch directly, and reuses one scratch for the whole range, so nothing is allocated per sketch.
+     */
+    private void cardinalities(long[] results, int from, int to)
+    {
+        StreamingHyperLogLogPlus.EstimateScratch scratch = new StreamingHyperLogLogPlus.EstimateScratch();
+        int m = 1 << p;
+        for (int i = from; i < to; i++)
+        {
+            int base = i * wordsPerSketch;
+            for (int bucket = 0, j = 0; j < m; bucket++, j += StreamingRegisterSet.LOG2_BITS_PER_WORD)
+            {
+                StreamingHyperLogLogPlus.countRegisters(words[base + bucket], Math.min(StreamingRegisterSet.LOG2_BITS_PER_WORD, m - j), scratch.histogram);
+            }
+            results[i] = sketches[i].estimateCardinality(scratch);
+        }
+    }
+
+    @SuppressWarnings("serial") // Never serialized, like every ForkJoinTask
+    private class CardinalitiesTask extends RecursiveAction {
+
+        private final long[] results;
+        private final int from;
+        private final int to;
+
+        CardinalitiesTask(long[] results, int from, int to)
+        {
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from <= PARALLEL_THRESHOLD)
+            {
+                cardinalities(results, from, to);
+            }
+            else
+            {
+                int mid = (from + to) >>> 1;
+                invokeAll(new CardinalitiesTask(results, from, mid), new CardinalitiesTask(results, mid, to));
+            }
+        }
+    }
+}
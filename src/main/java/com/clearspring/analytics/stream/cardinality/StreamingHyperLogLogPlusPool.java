@@ -0,0 +1,129 @@
+package com.clearspring.analytics.stream.cardinality;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A pool of reusable {@link StreamingHyperLogLogPlus} instances, keyed by precision.
+ * At high precisions every new instance allocates a large register set, so repeatedly aggregating into fresh instances
+ * puts a lot of pressure on the GC. Borrowing from the pool and releasing back to it keeps the steady state allocation-free.
+ * <p>
+ * Instances are {@link StreamingHyperLogLogPlus#reset() reset} when released, so a borrowed instance is always empty.
+ * Merging with {@link StreamingHyperLogLogPlus#mergeInto(StreamingHyperLogLogPlus, StreamingHyperLogLogPlus)} or
+ * {@link StreamingHyperLogLogPlus#addAll(StreamingHyperLogLogPlus)} doesn't allocate either, unlike the varargs
+ * {@link StreamingHyperLogLogPlus#mergeInto(StreamingHyperLogLogPlus, ICardinality...)}.
+ * This class is thread-safe, but the instances it hands out are not.
+ * </p>
+ */
+public class StreamingHyperLogLogPlusPool {
+
+    private final int maxIdlePerPrecision;
+    private final Map<Integer, ArrayDeque<StreamingHyperLogLogPlus>> idle = new HashMap<Integer, ArrayDeque<StreamingHyperLogLogPlus>>();
+    /**
+     * Instances being reset by {@link #release(StreamingHyperLogLogPlus)}, outside the lock
+     */
+    private final Set<StreamingHyperLogLogPlus> releasing = Collections.newSetFromMap(new IdentityHashMap<StreamingHyperLogLogPlus, Boolean>());
+
+    /**
+     * @param maxIdlePerPrecision - the maximum number of released instances kept for each precision.
+     *                            Instances released beyond that are left to the GC.
+     */
+    public StreamingHyperLogLogPlusPool(int maxIdlePerPrecision)
+    {
+        if (maxIdlePerPrecision < 0)
+        {
+            throw new IllegalArgumentException("maxIdlePerPrecision must not be negative");
+        }
+        this.maxIdlePerPrecision = maxIdlePerPrecision;
+    }
+
+    /**
+     * @return An empty instance with the given precision, reused from the pool if one is available.
+     */
+    public synchronized StreamingHyperLogLogPlus borrow(int p)
+    {
+        ArrayDeque<StreamingHyperLogLogPlus> instances = idle.get(p);
+        if (instances == null || instances.isEmpty())
+        {
+            return new StreamingHyperLogLogPlus(p);
+        }
+        return instances.pop();
+    }
+
+    /**
+     * Resets the instance and returns it to the pool. The caller must not use it afterwards.
+     * If the pool already holds {@code maxIdlePerPrecision} instances of its precision, it is dropped without a reset.
+     *
+     * @throws IllegalArgumentException if the instance is already waiting in the pool, or is a view whose registers
+     *                                  belong to something else, like {@link StreamingHyperLogLogPlusArray#get(int)}
+     *                                  or {@link MappedStreamingHyperLogLogPlusFile#get(int)}
+     */
+    public void release(StreamingHyperLogLogPlus hll)
+    {
+        if (hll.getRegisterSet().isShared())
+        {
+            // Resetting it would wipe the owner's registers, and a later borrower would write into them
+            throw new IllegalArgumentException("Views over shared registers can't be pooled");
+        }
+
+        synchronized (this)
+        {
+            // Releasing twice would let two borrowers share the same registers.
+            // StreamingHyperLogLogPlus doesn't override equals, so this is an identity check.
+            if (releasing.contains(hll) || idleInstances(hll.getPrecision()).contains(hll))
+            {
+                throw new IllegalArgumentException("Instance was already released to the pool");
+            }
+            if (idleInstances(hll.getPrecision()).size() >= maxIdlePerPrecision)
+            {
+                return;
+            }
+            releasing.add(hll);
+        }
+
+        // Clearing a large register set takes a while, so don't block other borrowers and releasers meanwhile
+        boolean wasReset = false;
+        try
+        {
+            hll.reset();
+            wasReset = true;
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                releasing.remove(hll);
+                // Other releases may have filled the pool while this one was resetting
+                ArrayDeque<StreamingHyperLogLogPlus> instances = idleInstances(hll.getPrecision());
+                if (wasReset && instances.size() < maxIdlePerPrecision)
+                {
+                    instances.push(hll);
+                }
+            }
+        }
+    }
+
+    private ArrayDeque<StreamingHyperLogLogPlus> idleInstances(int p)
+    {
+        ArrayDeque<StreamingHyperLogLogPlus> instances = idle.get(p);
+        if (instances == null)
+        {
+            instances = new ArrayDeque<StreamingHyperLogLogPlus>();
+            idle.put(p, instances);
+        }
+        return instances;
+    }
+
+    /**
+     * @return The number of instances of the given precision currently waiting in the pool.
+     */
+    public synchronized int idleCount(int p)
+    {
+        ArrayDeque<StreamingHyperLogLogPlus> instances = idle.get(p);
+        return instances == null ? 0 : instances.size();
+    }
+}
@@ -20,6 +20,8 @@ public class StreamingRegisterSet {
     public final int size;
 
     private final int[] M;
+    private final int offset;
+    private final boolean shared;
 
     public StreamingRegisterSet(int count)
     {
@@ -29,28 +31,69 @@ public class StreamingRegisterSet {
     public StreamingRegisterSet(int count, int[] initialValues)
     {
         this.count = count;
-        int bits = getBits(count);
+        this.M = initialValues == null ? new int[getSizeForCount(count)] : initialValues;
+        this.offset = 0;
+        this.shared = false;
+        this.size = this.M.length;
+    }
 
-        if (initialValues == null)
+    /**
+     * Creates a register set backed by a slice of a larger array, starting at the given offset.
+     * Used by {@link StreamingHyperLogLogPlusArray} to keep many register sets in one contiguous block.
+     */
+    StreamingRegisterSet(int count, int[] words, int offset)
+    {
+        this.count = count;
+        this.size = getSizeForCount(count);
+        if (offset < 0 || offset + size > words.length)
         {
-            if (bits == 0)
-            {
-                this.M = new int[1];
-            }
-            else if (bits % Integer.SIZE == 0)
-            {
-                this.M = new int[bits];
-            }
-            else
-            {
-                this.M = new int[bits + 1];
-            }
+            throw new IllegalArgumentException("Slice of " + size + " words at offset " + offset + " exceeds array of " + words.length);
+        }
+        this.M = words;
+        this.offset = offset;
+        this.shared = true;
+    }
+
+    /**
+     * For subclasses that keep their words outside the heap, and therefore override {@link #getDirectly(int)} and
+     * {@link #setDirectly(int, int)}.
+     */
+    protected StreamingRegisterSet(int count, int size)
+    {
+        this.count = count;
+        this.size = size;
+        this.M = null;
+        this.offset = 0;
+        this.shared = true;
+    }
+
+    /**
+     * @return true if the words belong to a larger structure (e.g. a {@link StreamingHyperLogLogPlusArray} or a file),
+     *         so this set must not be pooled or reused independently of it.
+     */
+    boolean isShared()
+    {
+        return shared;
+    }
+
+    /**
+     * @return The number of words needed to hold the given number of registers.
+     */
+    public static int getSizeForCount(int count)
+    {
+        int bits = getBits(count);
+        if (bits == 0)
+        {
+            return 1;
+        }
+        else if (bits % Integer.SIZE == 0)
+        {
+            return bits;
         }
         else
         {
-            this.M = initialValues;
+            return bits + 1;
         }
-        this.size = this.M.length;
     }
 
     public static int getBits(int count)
@@ -62,14 +105,14 @@ public class StreamingRegisterSet {
     {
         int bucketPos = position / LOG2_BITS_PER_WORD;
         int shift = REGISTER_SIZE * (position - (bucketPos * LOG2_BITS_PER_WORD));
-        this.M[bucketPos] = (this.M[bucketPos] & ~(0x1f << shift)) | (value << shift);
+        setDirectly(bucketPos, (getDirectly(bucketPos) & ~(0x1f << shift)) | (value << shift));
     }
 
     public int get(int position)
     {
         int bucketPos = position / LOG2_BITS_PER_WORD;
         int shift = REGISTER_SIZE * (position - (bucketPos * LOG2_BITS_PER_WORD));
-        return (this.M[bucketPos] & (0x1f << shift)) >>> shift;
+        return (getDirectly(bucketPos) & (0x1f << shift)) >>> shift;
     }
 
     public boolean updateIfGreater(int position, int value)
@@ -79,10 +122,11 @@ public class StreamingRegisterSet {
         int mask = 0x1f << shift;
 
         // Use long to avoid sign issues with the left-most shift
-        long curVal = this.M[bucket] & mask;
+        int word = getDirectly(bucket);
+        long curVal = word & mask;
         long newVal = value << shift;
         if (curVal < newVal) {
-            this.M[bucket] = (int)((this.M[bucket] & ~mask) | newVal);
+            setDirectly(bucket, (int)((word & ~mask) | newVal));
             return true;
         } else {
             return false;
@@ -91,56 +135,70 @@ public class StreamingRegisterSet {
 
     public void merge(StreamingRegisterSet that)
     {
-        for (int bucket = 0; bucket < M.length; bucket++)
+        for (int bucket = 0; bucket < size; bucket++)
         {
-            int word = 0;
-            for (int j = 0; j < LOG2_BITS_PER_WORD; j++)
-            {
-                int mask = 0x1f << (REGISTER_SIZE * j);
-
-                int thisVal = (this.M[bucket] & mask);
-                int thatVal = (that.M[bucket] & mask);
-                word |= (thisVal < thatVal) ? thatVal : thisVal;
-            }
-            this.M[bucket] = word;
+            setDirectly(bucket, mergeWords(getDirectly(bucket), that.getDirectly(bucket)));
         }
     }
 
     public void merge(DataInputStream dataInputStream) throws IOException {
         // The following is copied from RegisterSet.merge, with a few tweaks to avoid random access to the input stream
-        for (int bucket = 0; bucket < M.length; ++bucket) {
-            int word = 0;
+        for (int bucket = 0; bucket < size; ++bucket) {
             int nexIntFromSource = dataInputStream.readInt();
-            int nextIntFromUs = M[bucket];
-            for (int j = 0; j < RegisterSet.LOG2_BITS_PER_WORD; ++j) {
-                int mask = 0x1f << (RegisterSet.REGISTER_SIZE * j);
-                int thisVal = (nextIntFromUs & mask);
-                int thatVal = (nexIntFromSource & mask);
-                word |= (thisVal < thatVal) ? thatVal : thisVal;
-            }
-
-            M[bucket] = word;
+            setDirectly(bucket, mergeWords(getDirectly(bucket), nexIntFromSource));
+        }
+    }
+
+    private static int mergeWords(int thisWord, int thatWord)
+    {
+        int word = 0;
+        for (int j = 0; j < LOG2_BITS_PER_WORD; j++)
+        {
+            int mask = 0x1f << (REGISTER_SIZE * j);
+
+            int thisVal = (thisWord & mask);
+            int thatVal = (thatWord & mask);
+            word |= (thisVal < thatVal) ? thatVal : thisVal;
+        }
+        return word;
+    }
+
+    /**
+     * Zeroes all registers in place, so the instance can be reused without allocating a new array.
+     */
+    public void clear()
+    {
+        for (int bucket = 0; bucket < size; bucket++)
+        {
+            setDirectly(bucket, 0);
         }
     }
 
     public int[] bits()
     {
         int[] copy = new int[size];
-        System.arraycopy(M, 0, copy, 0, M.length);
+        for (int bucket = 0; bucket < size; bucket++)
+        {
+            copy[bucket] = getDirectly(bucket);
+        }
         return copy;
     }
 
     /**
-     * If this was present in {@link RegisterSet}, all this copy-pasting would not be necessary
+     * If this was present in {@link RegisterSet}, all this copy-pasting would not be necessary.
+     * <p>
+     * All word accesses go through this method and {@link #getDirectly(int)}, so a subclass that stores its words
+     * elsewhere only needs to override these two.
+     * </p>
      */
     protected void setDirectly(int position, int value) {
-        this.M[position] = value;
+        this.M[offset + position] = value;
     }
 
     /**
      * If this was present in {@link RegisterSet}, all this copy-pasting would not be necessary
      */
     protected int getDirectly(int position) {
-        return this.M[position];
+        return this.M[offset + position];
     }
 }
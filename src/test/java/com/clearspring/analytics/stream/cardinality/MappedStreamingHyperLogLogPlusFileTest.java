@@ -0,0 +1,191 @@
+package com.clearspring.analytics.stream.cardinality;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class MappedStreamingHyperLogLogPlusFileTest {
+
+    public static final int PRECISION = 10;
+    public static final int SKETCH_COUNT = 20;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random r = new Random();
+    private File path;
+
+    @Before
+    public void setup() throws IOException {
+        path = new File(folder.getRoot(), "sketches");
+    }
+
+    @Test
+    public void reopen() throws Exception {
+        StreamingHyperLogLogPlus[] expected = new StreamingHyperLogLogPlus[SKETCH_COUNT];
+        MappedStreamingHyperLogLogPlusFile file = MappedStreamingHyperLogLogPlusFile.create(path, PRECISION, SKETCH_COUNT);
+        for (int i = 0; i < SKETCH_COUNT; i++) {
+            expected[i] = new StreamingHyperLogLogPlus(PRECISION);
+            StreamingHyperLogLogPlus mapped = file.get(i);
+            for (int j = 0; j < 100 * i; j++) {
+                long hash = r.nextLong();
+                expected[i].offerHashed(hash);
+                mapped.offerHashed(hash);
+            }
+        }
+        file.close();
+
+        MappedStreamingHyperLogLogPlusFile reopened = MappedStreamingHyperLogLogPlusFile.open(path);
+        assertThat(reopened.getPrecision()).isEqualTo(PRECISION);
+        assertThat(reopened.size()).isEqualTo(SKETCH_COUNT);
+        for (int i = 0; i < SKETCH_COUNT; i++) {
+            assertThat(reopened.get(i).cardinality()).isEqualTo(expected[i].cardinality());
+            assertThat(reopened.get(i).getBytes()).isEqualTo(expected[i].getBytes());
+        }
+        reopened.close();
+    }
+
+    @Test
+    public void mergeBothWays() throws Exception {
+        MappedStreamingHyperLogLogPlusFile file = MappedStreamingHyperLogLogPlusFile.create(path, PRECISION, 1);
+        StreamingHyperLogLogPlus mapped = file.get(0);
+        StreamingHyperLogLogPlus heap = new StreamingHyperLogLogPlus(PRECISION);
+        HyperLogLogPlus serialized = new HyperLogLogPlus(PRECISION, PRECISION);
+        for (int j = 0; j < 1000; j++) {
+            heap.offerHashed(r.nextLong());
+            serialized.offerHashed(r.nextLong());
+        }
+
+        mapped.addAll(heap);
+        mapped.addAll(new ByteArrayInputStream(serialized.getBytes()));
+        heap.addAll(new ByteArrayInputStream(serialized.getBytes()));
+        assertThat(mapped.cardinality()).isEqualTo(heap.cardinality());
+
+        StreamingHyperLogLogPlus copy = new StreamingHyperLogLogPlus(PRECISION);
+        copy.addAll(mapped);
+        assertThat(copy.cardinality()).isEqualTo(heap.cardinality());
+
+        mapped.reset();
+        assertThat(mapped.cardinality()).isEqualTo(0);
+        file.close();
+    }
+
+    @Test
+    public void pool_rejectsViews() throws Exception {
+        MappedStreamingHyperLogLogPlusFile file = MappedStreamingHyperLogLogPlusFile.create(path, PRECISION, 1);
+        for (int j = 0; j < 1000; j++) {
+            file.get(0).offerHashed(r.nextLong());
+        }
+        long cardinality = file.get(0).cardinality();
+
+        StreamingHyperLogLogPlusPool pool = new StreamingHyperLogLogPlusPool(1);
+        try {
+            pool.release(file.get(0));
+            fail("Expected the view to be rejected");
+        }
+        catch (IllegalArgumentException expected) {
+        }
+        file.close();
+
+        assertThat(pool.idleCount(PRECISION)).isEqualTo(0);
+        MappedStreamingHyperLogLogPlusFile reopened = MappedStreamingHyperLogLogPlusFile.open(path);
+        assertThat(reopened.get(0).cardinality()).isEqualTo(cardinality);
+        reopened.close();
+    }
+
+    @Test
+    public void closed() throws Exception {
+        MappedStreamingHyperLogLogPlusFile file = MappedStreamingHyperLogLogPlusFile.create(path, PRECISION, 1);
+        StreamingHyperLogLogPlus sketch = file.get(0);
+        file.close();
+        file.close();
+
+        try {
+            sketch.offerHashed(r.nextLong());
+            fail("Expected writes to a sketch of a closed file to fail");
+        }
+        catch (IllegalStateException expected) {
+        }
+        try {
+            file.get(0);
+            fail("Expected get to fail on a closed file");
+        }
+        catch (IllegalStateException expected) {
+        }
+        try {
+            file.force();
+            fail("Expected force to fail on a closed file");
+        }
+        catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void create_existingFile() throws Exception {
+        MappedStreamingHyperLogLogPlusFile file = MappedStreamingHyperLogLogPlusFile.create(path, PRECISION, 1);
+        for (int j = 0; j < 1000; j++) {
+            file.get(0).offerHashed(r.nextLong());
+        }
+        long cardinality = file.get(0).cardinality();
+        file.close();
+
+        try {
+            MappedStreamingHyperLogLogPlusFile.create(path, PRECISION, 1);
+            fail("Expected create to refuse an existing file");
+        }
+        catch (IOException expected) {
+        }
+
+        MappedStreamingHyperLogLogPlusFile reopened = MappedStreamingHyperLogLogPlusFile.open(path);
+        assertThat(reopened.get(0).cardinality()).isEqualTo(cardinality);
+        reopened.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void open_corruptHeader() throws Exception {
+        MappedStreamingHyperLogLogPlusFile.create(path, PRECISION, 1).close();
+        RandomAccessFile raw = new RandomAccessFile(path, "rw");
+        raw.seek(8);
+        raw.writeInt(PRECISION + 1);
+        raw.close();
+
+        MappedStreamingHyperLogLogPlusFile.open(path);
+    }
+
+    @Test
+    public void open_otherVersion() throws Exception {
+        MappedStreamingHyperLogLogPlusFile.create(path, PRECISION, 1).close();
+        RandomAccessFile raw = new RandomAccessFile(path, "rw");
+        raw.seek(4);
+        raw.writeInt(MappedStreamingHyperLogLogPlusFile.FORMAT_VERSION + 1);
+        raw.close();
+
+        try {
+            MappedStreamingHyperLogLogPlusFile.open(path);
+            fail("Expected open to refuse another format version");
+        }
+        catch (IOException expected) {
+            assertThat(expected.getMessage()).startsWith("Unsupported format version");
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void open_truncated() throws Exception {
+        MappedStreamingHyperLogLogPlusFile.create(path, PRECISION, 2).close();
+        RandomAccessFile raw = new RandomAccessFile(path, "rw");
+        raw.setLength(raw.length() - 4);
+        raw.close();
+
+        MappedStreamingHyperLogLogPlusFile.open(path);
+    }
+}
@@ -0,0 +1,116 @@
+package com.clearspring.analytics.stream.cardinality;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class StreamingHyperLogLogPlusArrayTest {
+
+    public static final int PRECISION = 10;
+    public static final int SKETCH_COUNT = 200;
+
+    private final Random r = new Random();
+    private StreamingHyperLogLogPlusArray array;
+    private StreamingHyperLogLogPlus[] expected;
+
+    @Before
+    public void setup() {
+        array = new StreamingHyperLogLogPlusArray(PRECISION, SKETCH_COUNT);
+        expected = new StreamingHyperLogLogPlus[SKETCH_COUNT];
+        for (int i = 0; i < SKETCH_COUNT; i++) {
+            expected[i] = new StreamingHyperLogLogPlus(PRECISION);
+            // Vary the cardinalities so that both the linear counting and the bias corrected estimates are used
+            int count = r.nextInt(10 * (i + 1));
+            for (int j = 0; j < count; j++) {
+                long hash = r.nextLong();
+                array.offerHashed(i, hash);
+                expected[i].offerHashed(hash);
+            }
+        }
+    }
+
+    @Test
+    public void cardinalities() throws Exception {
+        long[] results = new long[SKETCH_COUNT];
+        array.cardinalities(results);
+        assertMatchesExpected(results);
+    }
+
+    @Test
+    public void cardinalities_parallel() throws Exception {
+        long[] results = new long[SKETCH_COUNT];
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            array.cardinalities(results, pool);
+        }
+        finally {
+            pool.shutdown();
+        }
+        assertMatchesExpected(results);
+    }
+
+    @Test
+    public void addAll() throws Exception {
+        StreamingHyperLogLogPlus other = new StreamingHyperLogLogPlus(PRECISION);
+        HyperLogLogPlus serialized = new HyperLogLogPlus(PRECISION, PRECISION);
+        for (int j = 0; j < 1000; j++) {
+            other.offerHashed(r.nextLong());
+            serialized.offerHashed(r.nextLong());
+        }
+
+        array.addAll(3, other);
+        array.addAll(3, new ByteArrayInputStream(serialized.getBytes()));
+        expected[3].addAll(other);
+        expected[3].addAll(new ByteArrayInputStream(serialized.getBytes()));
+
+        long[] results = new long[SKETCH_COUNT];
+        array.cardinalities(results);
+        assertMatchesExpected(results);
+    }
+
+    @Test
+    public void reset() throws Exception {
+        array.reset();
+
+        long[] results = new long[SKETCH_COUNT];
+        array.cardinalities(results);
+        assertThat(results).containsOnly(0L);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cardinalities_resultsTooShort() throws Exception {
+        array.cardinalities(new long[SKETCH_COUNT - 1]);
+    }
+
+    @Test
+    public void pool_rejectsViews() throws Exception {
+        StreamingHyperLogLogPlusPool pool = new StreamingHyperLogLogPlusPool(1);
+        long[] before = new long[SKETCH_COUNT];
+        array.cardinalities(before);
+
+        try {
+            pool.release(array.get(SKETCH_COUNT - 1));
+            fail("Expected the view to be rejected");
+        }
+        catch (IllegalArgumentException expected) {
+        }
+
+        assertThat(pool.idleCount(PRECISION)).isEqualTo(0);
+        long[] after = new long[SKETCH_COUNT];
+        array.cardinalities(after);
+        assertThat(after).isEqualTo(before);
+    }
+
+    private void assertMatchesExpected(long[] results) {
+        for (int i = 0; i < SKETCH_COUNT; i++) {
+            assertThat(results[i]).isEqualTo(expected[i].cardinality());
+            assertThat(array.get(i).getRegisterSet().bits()).isEqualTo(expected[i].getRegisterSet().bits());
+        }
+    }
+}
@@ -7,9 +7,12 @@ import org.junit.Test;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
 import java.util.Random;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
 
 /**
  * <p>
@@ -189,6 +192,161 @@ public class StreamingHyperLogLogPlusTest {
         addToTarget(src);
     }
 
+    @Test
+    public void cardinality_matchesHyperLogLogPlus() throws Exception {
+        // Covers the bias corrected range (estimates up to 5m) for every shape of bias vector
+        for (int p : new int[]{4, 5, 6, 10, 14}) {
+            HyperLogLogPlus expected = new HyperLogLogPlus(p);
+            StreamingHyperLogLogPlus actual = new StreamingHyperLogLogPlus(p);
+            int m = 1 << p;
+            for (int i = 1; i <= 6 * m; i++) {
+                long hash = r.nextLong();
+                expected.offerHashed(hash);
+                actual.offerHashed(hash);
+                if (i % Math.max(1, m / 64) == 0) {
+                    assertThat(actual.cardinality()).isEqualTo(expected.cardinality());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void reset() throws Exception {
+        addFull(target);
+        assertThat(target.cardinality()).isGreaterThan(0);
+
+        target.reset();
+
+        assertThat(target.cardinality()).isEqualTo(0);
+        addFull(target);
+        assertWithinMarginOfError(target.cardinality(), FULL_CARDINALITY);
+    }
+
+    @Test
+    public void mergeInto() throws Exception {
+        StreamingHyperLogLogPlus first = new StreamingHyperLogLogPlus(PRECISION);
+        StreamingHyperLogLogPlus second = new StreamingHyperLogLogPlus(PRECISION);
+        addFull(first);
+        addFull(second);
+        long expected = first.merge(second).cardinality();
+
+        StreamingHyperLogLogPlus merged = StreamingHyperLogLogPlus.mergeInto(target, first, second);
+
+        assertThat(merged).isSameAs(target);
+        assertThat(target.cardinality()).isEqualTo(expected);
+    }
+
+    @Test
+    public void mergeInto_singleSource() throws Exception {
+        StreamingHyperLogLogPlus source = new StreamingHyperLogLogPlus(PRECISION);
+        addFull(source);
+
+        StreamingHyperLogLogPlus merged = StreamingHyperLogLogPlus.mergeInto(target, source);
+
+        assertThat(merged).isSameAs(target);
+        assertThat(target.getBytes()).isEqualTo(source.getBytes());
+    }
+
+    @Test(expected = CardinalityMergeException.class)
+    public void mergeInto_wrongPrecision() throws Exception {
+        StreamingHyperLogLogPlus.mergeInto(target, new StreamingHyperLogLogPlus(PRECISION + 1));
+    }
+
+    @Test
+    public void pool_reusesResetInstances() throws Exception {
+        StreamingHyperLogLogPlusPool pool = new StreamingHyperLogLogPlusPool(1);
+        StreamingHyperLogLogPlus borrowed = pool.borrow(PRECISION);
+        addFull(borrowed);
+        pool.release(borrowed);
+        pool.release(new StreamingHyperLogLogPlus(PRECISION));
+
+        assertThat(pool.idleCount(PRECISION)).isEqualTo(1);
+        assertThat(pool.borrow(PRECISION + 1)).isNotSameAs(borrowed);
+
+        StreamingHyperLogLogPlus reused = pool.borrow(PRECISION);
+        assertThat(reused).isSameAs(borrowed);
+        assertThat(reused.cardinality()).isEqualTo(0);
+        assertThat(pool.idleCount(PRECISION)).isEqualTo(0);
+    }
+
+    @Test
+    public void pool_rejectsDoubleRelease() throws Exception {
+        StreamingHyperLogLogPlusPool pool = new StreamingHyperLogLogPlusPool(2);
+        StreamingHyperLogLogPlus borrowed = pool.borrow(PRECISION);
+        pool.release(borrowed);
+
+        try {
+            pool.release(borrowed);
+            fail("Expected the second release to be rejected");
+        }
+        catch (IllegalArgumentException expected) {
+        }
+
+        assertThat(pool.idleCount(PRECISION)).isEqualTo(1);
+        assertThat(pool.borrow(PRECISION)).isNotSameAs(pool.borrow(PRECISION));
+    }
+
+    @Test
+    public void pool_overCapacity() throws Exception {
+        StreamingHyperLogLogPlusPool pool = new StreamingHyperLogLogPlusPool(1);
+        StreamingHyperLogLogPlus kept = pool.borrow(PRECISION);
+        pool.release(kept);
+        StreamingHyperLogLogPlus dropped = new StreamingHyperLogLogPlus(PRECISION);
+        addFull(dropped);
+        long cardinality = dropped.cardinality();
+
+        pool.release(dropped);
+
+        // Dropped instances aren't worth resetting
+        assertThat(dropped.cardinality()).isEqualTo(cardinality);
+        assertThat(pool.idleCount(PRECISION)).isEqualTo(1);
+        assertThat(pool.borrow(PRECISION)).isSameAs(kept);
+        assertThat(pool.idleCount(PRECISION)).isEqualTo(0);
+    }
+
+    @Test
+    public void pool_zeroCapacity() throws Exception {
+        StreamingHyperLogLogPlusPool pool = new StreamingHyperLogLogPlusPool(0);
+        addFull(target);
+        long cardinality = target.cardinality();
+
+        pool.release(target);
+
+        assertThat(target.cardinality()).isEqualTo(cardinality);
+        assertThat(pool.idleCount(PRECISION)).isEqualTo(0);
+    }
+
+    private void offerAllHashedTest(int p, boolean directBuffer) throws IOException {
+        long[] hashes = new long[10 * FULL_CARDINALITY];
+        StreamingHyperLogLogPlus expected = new StreamingHyperLogLogPlus(p);
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = r.nextLong();
+            expected.offerHashed(hashes[i]);
+        }
+        LongBuffer buffer = LongBuffer.wrap(hashes);
+        if (directBuffer) {
+            buffer = ByteBuffer.allocateDirect(hashes.length * 8).asLongBuffer().put(hashes);
+            buffer.flip();
+        }
+
+        StreamingHyperLogLogPlus actual = new StreamingHyperLogLogPlus(p);
+        assertThat(actual.offerAllHashed(buffer)).isTrue();
+
+        assertThat(buffer.hasRemaining()).isFalse();
+        assertThat(actual.getBytes()).isEqualTo(expected.getBytes());
+        assertThat(actual.offerAllHashed(hashes)).isFalse();
+    }
+
+    @Test
+    public void offerAllHashed() throws Exception {
+        offerAllHashedTest(16, false);
+    }
+
+    @Test
+    public void offerAllHashed_directBuffer() throws Exception {
+        offerAllHashedTest(16, true);
+    }
+
     private void addToTarget(HyperLogLogPlus src) throws CardinalityMergeException, IOException {
         target.addAll(new ByteArrayInputStream(src.getBytes()));
     }